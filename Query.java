@@ -1,13 +1,17 @@
-//  To run the program: javac -g VideoStore.java Query.java
+//  To run the program: javac -g VideoStore.java Query.java RentalLog.java TitleIndex.java
 //                      java -cp ".;sqljdbc4.jar" VideoStore joesmith password1
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 
+import java.io.File;
 import java.io.FileInputStream;
 
 
@@ -23,11 +27,18 @@ public class Query {
     private String jSQLCustomerUrl;
     private String jSQLUser;
     private String jSQLPassword;
+    private String rentalLogDir;
 
     // DB Connection
     private Connection conn;
     private Connection customerConn;
 
+    // Local log of committed rents and returns
+    private RentalLog rentalLog;
+
+    // Prefix index over movie names, built on the first suggest
+    private TitleIndex titleIndex;
+
     // Canned queries
 
     // LIKE does a case-insensitive match
@@ -56,6 +67,9 @@ public class Query {
                                                 + "WHERE c.mid = ? and a.id = c.pid order by lname";
     private PreparedStatement actorMidStatement;
 
+    private static final String ALL_TITLES_SQL = "select id, name, year from movie";
+    private PreparedStatement allTitlesStatement;
+
     /* uncomment, and edit, after your create your own customer database */
     private static final String CUSTOMER_LOGIN_SQL = 
         "SELECT * FROM customers WHERE login = ? and password = ?";
@@ -65,20 +79,44 @@ public class Query {
         "SELECT * FROM customers WHERE cid = ?";
     private PreparedStatement customerNameStatement;
 
-    private static final String CUSTOMER_PLAN_SQL = "select A.name, A.max_rentals, A.monthly_fee "
-                                                  + "from rental_plans A, has_plan B "
-                                                  + "where B.cid = ? and A.pid = B.pid;";
+    private static final String CUSTOMER_PLAN_SQL = "select pid from has_plan where cid = ?";
     private PreparedStatement customerPlanStatement;
 
+    private static final String CUSTOMER_MAX_RENTALS_SQL = "select A.pid, A.max_rentals "
+                                                         + "from rental_plans A, has_plan B "
+                                                         + "where B.cid = ? and A.pid = B.pid";
+    private PreparedStatement customerMaxRentalsStatement;
+
     private static final String CUSTOMER_RENTALS_SQL = "select * from customer_rentals where cid = ? and status = 'open'";
     private PreparedStatement customerRentalsStatement;
 
-    private static final String RENTAL_PLANS_SQL = "select * from rental_plans";
+    private static final String RENTAL_PLANS_SQL = "select pid, name, max_rentals, monthly_fee from rental_plans order by pid";
     private PreparedStatement rentalPlansStatement;
 
-    private static final String VALID_PLAN_SQL = "select * from rental_plans where pid = ?";
+    private static final String VALID_PLAN_SQL = "select max_rentals from rental_plans where pid = ?";
     private PreparedStatement validPlanStatement;
 
+    // CHANGE_FEED is filled by triggers on customer_rentals, has_plan and rental_plans.
+    // Feed reads skip locked rows and stop below min_active_rowversion(), so they never
+    // wait for, or block, a writer, and every row they return is already committed
+    private static final String CHANGE_VERSION_SQL = "select isnull(max(cast(version as bigint)), 0) "
+                                                   + "from change_feed with (readcommitted, readpast) "
+                                                   + "where version < min_active_rowversion()";
+    private PreparedStatement changeVersionStatement;
+
+    // reads from the last applied version on, so a missing first row shows it was trimmed
+    private static final String CHANGE_FEED_SQL = "select cast(version as bigint) as version, table_name, cid, mid, pid "
+                                                + "from change_feed with (readcommitted, readpast) "
+                                                + "where version >= cast(? as binary(8)) and version < min_active_rowversion() "
+                                                + "order by version";
+    private PreparedStatement changeFeedStatement;
+
+    // retention: drop entries older than a day, but always keep the newest one
+    private static final String TRIM_CHANGE_FEED_SQL = "delete from change_feed "
+                                                     + "where changed_at < dateadd(day, -1, sysdatetime()) "
+                                                     + "and version < (select max(version) from change_feed)";
+    private PreparedStatement trimChangeFeedStatement;
+
     private static final String VALID_MOVIE_SQL = "select * from movie where id = ?";
     private PreparedStatement validMovieStatement;
 
@@ -105,6 +143,25 @@ public class Query {
     private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
     private PreparedStatement rollbackTransactionStatement;
 
+    // Plan catalog: RENTAL_PLANS rarely changes, so keep it in memory and
+    // only reload it when the change feed reports a plan change
+    private static class RentalPlan {
+        int pid;
+        String name;
+        int maxRentals;
+        float monthlyFee;
+    }
+
+    private TreeMap<Integer, RentalPlan> planCatalog = new TreeMap<Integer, RentalPlan>();
+
+    // Customer state cached between polls of the change feed
+    private HashMap<Integer, Integer> customerPlanCache = new HashMap<Integer, Integer>();  // cid -> pid
+    private HashMap<Integer, Integer> rentalCountCache = new HashMap<Integer, Integer>();   // cid -> open rentals
+    private HashMap<Integer, Integer> renterCache = new HashMap<Integer, Integer>();        // mid -> cid, or -1
+
+    // Highest change feed version applied to the caches above
+    private long lastChangeVersion = 0;
+
     public Query(String configFilename) {
         this.configFilename = configFilename;
     }
@@ -124,6 +181,7 @@ public class Query {
         jSQLPassword   = configProps.getProperty("videostore.sqlazure_password");
 
         jSQLCustomerUrl = configProps.getProperty("videostore.customer_url");
+        rentalLogDir   = configProps.getProperty("videostore.rental_log_dir", "rental_log");
 
 
         /* load jdbc drivers */
@@ -149,11 +207,15 @@ public class Query {
                                                    jSQLPassword); // password
         customerConn.setAutoCommit(true); //by default automatically commit after each statement
         customerConn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+
+        /* open the rental event log; this replays it to rebuild the aggregates */
+        rentalLog = new RentalLog(new File(rentalLogDir));
    }
 
     public void closeConnection() throws Exception {
         conn.close();
         customerConn.close();
+        rentalLog.close();
     }
 
     /**********************************************************/
@@ -169,6 +231,7 @@ public class Query {
         actorMidStatement = conn.prepareStatement(ACTOR_MID_SQL);
         directorSetStatement = conn.prepareStatement(DIRECTOR_SET_SQL);
         actorSetStatement = conn.prepareStatement(ACTOR_SET_SQL);
+        allTitlesStatement = conn.prepareStatement(ALL_TITLES_SQL);
 
         /* uncomment after you create your customers database */
         customerLoginStatement = customerConn.prepareStatement(CUSTOMER_LOGIN_SQL);
@@ -179,13 +242,29 @@ public class Query {
         /* add here more prepare statements for all the other queries you need */
         customerNameStatement = customerConn.prepareStatement(CUSTOMER_NAME_SQL);
         customerPlanStatement = customerConn.prepareStatement(CUSTOMER_PLAN_SQL);
+        customerMaxRentalsStatement = customerConn.prepareStatement(CUSTOMER_MAX_RENTALS_SQL);
+        validPlanStatement = customerConn.prepareStatement(VALID_PLAN_SQL);
         customerRentalsStatement = customerConn.prepareStatement(CUSTOMER_RENTALS_SQL);
         rentalPlansStatement = customerConn.prepareStatement(RENTAL_PLANS_SQL);
+        changeVersionStatement = customerConn.prepareStatement(CHANGE_VERSION_SQL);
+        changeFeedStatement = customerConn.prepareStatement(CHANGE_FEED_SQL);
+        trimChangeFeedStatement = customerConn.prepareStatement(TRIM_CHANGE_FEED_SQL);
         updateHasPlanStatement = customerConn.prepareStatement(UPDATE_HAS_PLAN_SQL);
-        validPlanStatement = customerConn.prepareStatement(VALID_PLAN_SQL);
         renterIdStatement = customerConn.prepareStatement(RENTER_ID_SQL);
         insertRentalStatement = customerConn.prepareStatement(INSERT_RENTAL_SQL);
         updateCustomerRentalsStatement = customerConn.prepareStatement(UPDATE_CUSTOMER_RENTALS_SQL);
+
+        /* trim old change feed entries, start following the feed from its current end,
+           then load the plan catalog */
+        trimChangeFeedStatement.executeUpdate();
+        changeVersionStatement.clearParameters();
+        ResultSet version_set = changeVersionStatement.executeQuery();
+        if (version_set.next())
+        {
+            lastChangeVersion = version_set.getLong(1);
+        }
+        version_set.close();
+        loadPlanCatalog();
     }
 
 
@@ -193,6 +272,104 @@ public class Query {
     /* Suggested helper functions; you can complete these, or write your own
        (but remember to delete the ones you are not using!) */
 
+    private void pollChanges() throws Exception {
+        /* Apply every change feed entry newer than lastChangeVersion, whether it came
+           from this instance or another one, by dropping the cache entries it touches.
+           Called once per display operation, outside any transaction; the cached
+           helpers below only read the caches. Transactions that write check
+           their conditions against the database instead (see the query* helpers). */
+        boolean plansChanged = false;
+        boolean sawLastVersion = false;
+        long fromVersion = lastChangeVersion;
+
+        changeFeedStatement.clearParameters();
+        changeFeedStatement.setLong(1, fromVersion);
+        ResultSet change_set = changeFeedStatement.executeQuery();
+        while (change_set.next())
+        {
+            long version = change_set.getLong("version");
+            if (version == fromVersion)
+            {
+                sawLastVersion = true;
+                continue; // already applied
+            }
+
+            String table = change_set.getString("table_name");
+            int cid = change_set.getInt("cid");
+            int mid = change_set.getInt("mid");
+
+            if (table.equals("customer_rentals"))
+            {
+                rentalCountCache.remove(cid);
+                renterCache.remove(mid);
+            }
+            else if (table.equals("has_plan"))
+            {
+                customerPlanCache.remove(cid);
+            }
+            else if (table.equals("rental_plans"))
+            {
+                plansChanged = true;
+            }
+            lastChangeVersion = version;
+        }
+        change_set.close();
+
+        if (fromVersion > 0 && !sawLastVersion)
+        {
+            /* entries we never saw may have been trimmed, so nothing cached can be trusted */
+            customerPlanCache.clear();
+            rentalCountCache.clear();
+            renterCache.clear();
+            plansChanged = true;
+        }
+
+        if (plansChanged)
+        {
+            loadPlanCatalog();
+        }
+    }
+
+    private void loadPlanCatalog() throws Exception {
+        /* Read all of RENTAL_PLANS into the plan catalog */
+        TreeMap<Integer, RentalPlan> catalog = new TreeMap<Integer, RentalPlan>();
+        rentalPlansStatement.clearParameters();
+        ResultSet plan_set = rentalPlansStatement.executeQuery();
+        while (plan_set.next())
+        {
+            RentalPlan plan = new RentalPlan();
+            plan.pid = plan_set.getInt("pid");
+            plan.name = plan_set.getString("name");
+            plan.maxRentals = plan_set.getInt("max_rentals");
+            plan.monthlyFee = plan_set.getFloat("monthly_fee");
+            catalog.put(plan.pid, plan);
+        }
+        plan_set.close();
+
+        planCatalog = catalog;
+    }
+
+    private RentalPlan getCustomerPlan(int cid) throws Exception {
+        /* Find the plan of the customer cid in the plan catalog; return null if none.
+           Reads only the caches, so the caller polls the change feed once beforehand */
+        Integer pid = customerPlanCache.get(cid);
+        if (pid == null)
+        {
+            pid = -1;
+            customerPlanStatement.clearParameters();
+            customerPlanStatement.setInt(1,cid);
+            ResultSet plan_set = customerPlanStatement.executeQuery();
+            if (plan_set.next())
+            {
+                pid = plan_set.getInt("pid");
+            }
+            plan_set.close();
+            customerPlanCache.put(cid, pid);
+        }
+
+        return planCatalog.get(pid);
+    }
+
     public int getRemainingRentals(int cid) throws Exception {
         /* How many movies can she/he still rent?
            You have to compute and return the difference between the customer's plan
@@ -201,6 +378,32 @@ public class Query {
         int maxRentals = 0;
         int remainingRentals = 0;
 
+        Integer cachedRentals = rentalCountCache.get(cid);
+        if (cachedRentals != null)
+        {
+            curRentals = cachedRentals;
+        }
+        else
+        {
+            curRentals = queryOpenRentals(cid);
+            rentalCountCache.put(cid, curRentals);
+        }
+
+        RentalPlan plan = getCustomerPlan(cid);
+        if (plan != null)
+        {
+            maxRentals = plan.maxRentals;
+        }
+
+        remainingRentals = maxRentals - curRentals;
+
+        return (remainingRentals);
+    }
+
+    private int queryOpenRentals(int cid) throws Exception {
+        /* Count the open rentals of customer cid in the database, bypassing the cache */
+        int curRentals = 0;
+
         customerRentalsStatement.clearParameters();
         customerRentalsStatement.setInt(1,cid);
         ResultSet customer_set = customerRentalsStatement.executeQuery();
@@ -210,18 +413,23 @@ public class Query {
         }
         customer_set.close();
 
-        customerPlanStatement.clearParameters();
-        customerPlanStatement.setInt(1,cid);
-        ResultSet plan_set = customerPlanStatement.executeQuery();
+        return curRentals;
+    }
+
+    private int queryPlanMaxRentals(int pid) throws Exception {
+        /* Find max_rentals of plan pid in the database; return -1 if there is no such plan */
+        int maxRentals = -1;
+
+        validPlanStatement.clearParameters();
+        validPlanStatement.setInt(1,pid);
+        ResultSet plan_set = validPlanStatement.executeQuery();
         if (plan_set.next())
         {
             maxRentals = plan_set.getInt("max_rentals");
         }
         plan_set.close();
 
-        remainingRentals = maxRentals - curRentals;
-
-        return (remainingRentals);
+        return maxRentals;
     }
 
     public String getCustomerName(int cid) throws Exception {
@@ -245,56 +453,60 @@ public class Query {
 
     public boolean isValidPlan(int planid) throws Exception {
         /* Is planid a valid plan ID?  You have to figure it out */
-        validPlanStatement.clearParameters();
-        validPlanStatement.setInt(1,planid);
-        ResultSet plan_set = validPlanStatement.executeQuery();
-
-        if(plan_set.next())
-        {
-            plan_set.close();
-            return true;
-        }
-        else
-        {
-            plan_set.close();
-            return false;
-        }
+        /* Answered from the plan catalog, so it is only as fresh as the last
+           pollChanges(): call it after a transaction_* method that polls
+           (e.g. transaction_printPersonalData) */
+        return planCatalog.containsKey(planid);
     }
 
     public boolean isValidMovie(int mid) throws Exception {
         /* is mid a valid movie ID?  You have to figure it out */
+        return getMovieName(mid) != null;
+    }
+
+    private String getMovieName(int mid) throws Exception {
+        /* Find the name of the movie mid; return null if there is no such movie */
         validMovieStatement.clearParameters();
         validMovieStatement.setInt(1,mid);
         ResultSet movie_set = validMovieStatement.executeQuery();
 
+        String name = null;
         if(movie_set.next())
         {
-            movie_set.close();
-            return true;
-        }
-        else
-        {
-            movie_set.close();
-            return false;
+            name = movie_set.getString("name");
         }
+        movie_set.close();
+
+        return name;
     }
 
     private int getRenterID(int mid) throws Exception {
         /* Find the customer id (cid) of whoever currently rents the movie mid; return -1 if none */
+        Integer cachedRenter = renterCache.get(mid);
+        if (cachedRenter != null)
+        {
+            return cachedRenter;
+        }
+
+        int cid = queryRenterID(mid);
+        renterCache.put(mid, cid);
+
+        return cid;
+    }
+
+    private int queryRenterID(int mid) throws Exception {
+        /* Same as getRenterID, but always asks the database */
+        int cid = -1;
         renterIdStatement.clearParameters();
         renterIdStatement.setInt(1,mid);
         ResultSet rental_set = renterIdStatement.executeQuery();
         if(rental_set.next())
         {
-            int cid = rental_set.getInt("cid");
-            rental_set.close();
-            return cid;
-        }
-        else
-        {
-            rental_set.close();
-            return -1;
+            cid = rental_set.getInt("cid");
         }
+        rental_set.close();
+
+        return cid;
     }
 
     /**********************************************************/
@@ -327,16 +539,14 @@ public class Query {
         int maxRentals = 0;
         float monthlyFee = 0;
 
-        customerPlanStatement.clearParameters();
-        customerPlanStatement.setInt(1,cid);
-        ResultSet plan_set = customerPlanStatement.executeQuery();
-        if (plan_set.next())
+        pollChanges();
+        RentalPlan plan = getCustomerPlan(cid);
+        if (plan != null)
         {
-            planName = plan_set.getString("name");
-            maxRentals = plan_set.getInt("max_rentals");
-            monthlyFee = plan_set.getFloat("monthly_fee");
+            planName = plan.name;
+            maxRentals = plan.maxRentals;
+            monthlyFee = plan.monthlyFee;
         }
-        plan_set.close();
 
         int remainingRentals = getRemainingRentals(cid);
         int currentRentals = maxRentals - remainingRentals;
@@ -364,6 +574,8 @@ public class Query {
         /* prints the movies, directors, actors, and the availability status:
            AVAILABLE, or UNAVAILABLE, or YOU CURRENTLY RENT IT */
 
+        pollChanges();
+
         /* Interpolate the movie title into the SQL string */
         searchStatement.clearParameters();
         searchStatement.setString(1,"%" + movie_title + "%");
@@ -420,34 +632,12 @@ public class Query {
         updateHasPlanStatement.setInt(1, pid);
         updateHasPlanStatement.setInt(2, cid);
 
+        /* the checks read the database, not the caches: they must hold at commit */
         beginTransaction();
 
-        int curMaxRentals = 0;
-        int newMaxRentals = 0;
-        int remainingRentals = 0;
-        int currentRentals = 0;
-        boolean validPlan = isValidPlan(pid);
-
-        customerPlanStatement.clearParameters();
-        customerPlanStatement.setInt(1,cid);
-        ResultSet plan_set = customerPlanStatement.executeQuery();
-        if (plan_set.next())
-        {
-            curMaxRentals = plan_set.getInt("max_rentals");
-        }
-        plan_set.close();
-
-        remainingRentals = getRemainingRentals(cid);
-        currentRentals = curMaxRentals - remainingRentals;
-
-        validPlanStatement.clearParameters();
-        validPlanStatement.setInt(1,pid);
-        ResultSet rental_set = validPlanStatement.executeQuery();
-        if (rental_set.next())
-        {
-            newMaxRentals = rental_set.getInt("max_rentals");
-        }
-        rental_set.close();
+        int currentRentals = queryOpenRentals(cid);
+        int newMaxRentals = queryPlanMaxRentals(pid);
+        boolean validPlan = (newMaxRentals >= 0);
 
         updateHasPlanStatement.executeUpdate();
 
@@ -465,31 +655,38 @@ public class Query {
 
     public void transaction_listPlans() throws Exception {
         /* println all available plans: SELECT * FROM plan */
-        rentalPlansStatement.clearParameters();
-        ResultSet plan_set = rentalPlansStatement.executeQuery();
+        pollChanges();
         System.out.println("********************** Plans **********************");
         System.out.println(String.format("%-10s%-15s%-14s%s","pid","name","max_rentals","monthly_fee"));
-        while (plan_set.next())
+        for (RentalPlan plan : planCatalog.values())
         {
-            int pid = plan_set.getInt("pid");
-            String name = plan_set.getString("name");
-            int maxRentals = plan_set.getInt("max_rentals");
-            float monthlyFee = plan_set.getFloat("monthly_fee");
-
-            System.out.println(String.format("%-10d%-15s%-14d$%.2f",pid,name,maxRentals,monthlyFee));
+            System.out.println(String.format("%-10d%-15s%-14d$%.2f",plan.pid,plan.name,plan.maxRentals,plan.monthlyFee));
         }
         System.out.println("***************************************************");
-        plan_set.close();
     }
 
     public void transaction_rent(int cid, int mid) throws Exception {
         /* rent the movie mid to the customer cid */
         /* remember to enforce consistency ! */
+        /* the checks read the database, not the caches: they must hold at commit */
         beginTransaction();
 
-        int remainingRentals = getRemainingRentals(cid);
-        int renterId = getRenterID(mid);
-        boolean validMovie = isValidMovie(mid);
+        int pid = -1;
+        int maxRentals = 0;
+        customerMaxRentalsStatement.clearParameters();
+        customerMaxRentalsStatement.setInt(1,cid);
+        ResultSet plan_set = customerMaxRentalsStatement.executeQuery();
+        if (plan_set.next())
+        {
+            pid = plan_set.getInt("pid");
+            maxRentals = plan_set.getInt("max_rentals");
+        }
+        plan_set.close();
+
+        int remainingRentals = maxRentals - queryOpenRentals(cid);
+        int renterId = queryRenterID(mid);
+        String movieName = getMovieName(mid);
+        boolean validMovie = (movieName != null);
 
         insertRentalStatement.clearParameters();
         insertRentalStatement.setInt(1, cid);
@@ -500,6 +697,7 @@ public class Query {
         {
             System.out.println("Commit transaction");
             commitTransaction();
+            rentalLog.logRent(cid, mid, pid, movieName);
         }
         else
         {
@@ -512,7 +710,7 @@ public class Query {
         /* return the movie mid by the customer cid */
 
         beginTransaction();
-        int renterId = getRenterID(mid);
+        int renterId = queryRenterID(mid);
 
         updateCustomerRentalsStatement.clearParameters();
         updateCustomerRentalsStatement.setInt(1, cid);
@@ -522,6 +720,7 @@ public class Query {
         {
             System.out.println("Commit transaction");
             commitTransaction();
+            rentalLog.logReturn(cid, mid);
         }
         else
         {
@@ -530,6 +729,62 @@ public class Query {
         }
     }
 
+    public void transaction_suggest(String prefix, int n) throws Exception {
+        /* println up to n movies whose title starts with prefix, with their ids.
+           The first call reads every movie name once; later calls stay in memory */
+        if (titleIndex == null)
+        {
+            System.out.println("Building title index...");
+            TitleIndex index = new TitleIndex();
+            allTitlesStatement.clearParameters();
+            ResultSet movie_set = allTitlesStatement.executeQuery();
+            while (movie_set.next())
+            {
+                index.add(movie_set.getInt("id"), movie_set.getString("name"), movie_set.getString("year"));
+            }
+            movie_set.close();
+            index.build();
+            titleIndex = index;
+        }
+
+        List<TitleIndex.Title> titles = titleIndex.suggest(prefix, n);
+        for (TitleIndex.Title title : titles)
+        {
+            System.out.println("ID: " + title.id + " NAME: " + title.name + " YEAR: " + title.year);
+        }
+        if (titles.isEmpty())
+        {
+            System.out.println("No titles start with '" + prefix + "'");
+        }
+        System.out.println();
+    }
+
+    public void transaction_top(int n) throws Exception {
+        /* println the most rented titles of the last week and the open rentals per plan,
+           from the rental log aggregates; only the change feed poll touches the database */
+        pollChanges();
+        rentalLog.refresh();
+
+        List<Integer> mids = rentalLog.getTopTitles(n);
+        System.out.println("*************** Top Rentals This Week ***************");
+        System.out.println(String.format("%-6s%-10s%-10s%s","rank","mid","rentals","name"));
+        for (int i = 0; i < mids.size(); i++)
+        {
+            int mid = mids.get(i);
+            System.out.println(String.format("%-6d%-10d%-10d%s",i + 1,mid,rentalLog.getWeekRentals(mid),rentalLog.getTitle(mid)));
+        }
+
+        System.out.println("*************** Active Rentals Per Plan *************");
+        System.out.println(String.format("%-10s%-15s%s","pid","name","active_rentals"));
+        HashMap<Integer, Integer> activeRentals = rentalLog.getActiveRentalsPerPlan();
+        for (RentalPlan plan : planCatalog.values())
+        {
+            Integer active = activeRentals.get(plan.pid);
+            System.out.println(String.format("%-10d%-15s%d",plan.pid,plan.name,(active == null ? 0 : active)));
+        }
+        System.out.println("*****************************************************");
+    }
+
     public void transaction_fastSearch(int cid, String movie_title)
             throws Exception {
         /* like transaction_search, but uses joins instead of dependent joins
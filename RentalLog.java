@@ -0,0 +1,484 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+
+/**
+ * Append-only log of rent and return events, kept in local segment files,
+ * with aggregates over the log maintained in memory as events arrive.
+ *
+ * Several VideoStore processes may share the log directory. Each one writes
+ * only its own segments (rental-INSTANCE-NNNNNN.log) and reads the others'
+ * segments when refresh() is called. A checkpoint of the aggregates and of
+ * how far each segment has been read bounds the replay on startup, and
+ * segments older than a week are deleted once they are fully read.
+ */
+public class RentalLog {
+    private static final String SEGMENT_PREFIX = "rental-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILENAME = "checkpoint";
+    private static final String LOCK_FILENAME = "checkpoint.lock";
+    private static final long MAX_SEGMENT_BYTES = 1024 * 1024;
+    private static final long WEEK_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    // A rent counted in the last week's totals
+    private static class WeekRental {
+        long time;
+        int mid;
+        String title;
+    }
+
+    // Latest known state of one customer's rental of one movie
+    private static class RentalState {
+        boolean open;
+        int pid;
+        long time;  // time of the event that set this state
+    }
+
+    private File dir;
+    private String instanceId;
+    private int segmentNumber = 0;
+    private String segmentName;
+    private FileChannel segment;
+
+    // Bytes of each segment already applied to the aggregates, and the
+    // generation of the shared checkpoint that state started from
+    private HashMap<String, Long> readOffsets = new HashMap<String, Long>();
+    private long checkpointGeneration = 0;
+
+    // Aggregates
+    private PriorityQueue<WeekRental> weekRentals = new PriorityQueue<WeekRental>(16, new Comparator<WeekRental>() {
+        public int compare(WeekRental a, WeekRental b) {
+            return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+        }
+    });
+    private HashMap<Integer, Integer> weekRentalCounts = new HashMap<Integer, Integer>();    // mid -> rentals in the last week
+    private HashMap<Integer, String> titles = new HashMap<Integer, String>();                // mid -> movie name
+    private HashMap<String, RentalState> rentals = new HashMap<String, RentalState>();       // "cid:mid" -> latest state
+    private HashMap<Integer, Integer> activeRentalsPerPlan = new HashMap<Integer, Integer>(); // pid -> open rentals
+
+    public RentalLog(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Cannot create rental log directory " + dir);
+        }
+        instanceId = System.currentTimeMillis() + "-" + (1000 + new Random().nextInt(9000));
+
+        /* start from the last checkpoint, read what was logged after it, and
+           checkpoint again so the next startup does not replay it either */
+        loadCheckpoint();
+        refresh();
+        writeCheckpoint();
+    }
+
+    public synchronized void close() throws IOException {
+        if (segment != null)
+        {
+            segment.close();
+            segment = null;
+        }
+        writeCheckpoint();
+    }
+
+    /**********************************************************/
+    /* Appending events. Both calls return once the event is on disk. */
+
+    public void logRent(int cid, int mid, int pid, String title) throws IOException {
+        append(System.currentTimeMillis() + "\trent\t" + cid + "\t" + mid + "\t" + pid + "\t"
+               + title.replace('\t', ' ').replace('\n', ' ') + "\n");
+    }
+
+    public void logReturn(int cid, int mid) throws IOException {
+        append(System.currentTimeMillis() + "\treturn\t" + cid + "\t" + mid + "\t-1\t\n");
+    }
+
+    private synchronized void append(String line) throws IOException {
+        /* each process runs one menu loop and logs one event per committed
+           transaction, so every append is written and forced on its own */
+        if (segment == null || segment.size() >= MAX_SEGMENT_BYTES
+            || !new File(dir, segmentName).exists())
+        {
+            /* the last check covers an idle segment deleted as expired by another instance */
+            if (segment != null)
+            {
+                segment.close();
+            }
+            openSegment(segmentNumber + 1);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(line.getBytes("UTF-8"));
+        while (buf.hasRemaining())
+        {
+            segment.write(buf);
+        }
+        segment.force(false);
+
+        applyLine(line.substring(0, line.length() - 1));
+        readOffsets.put(segmentName, segment.size());
+    }
+
+    private void openSegment(int number) throws IOException {
+        /* always a new file, created on the first write: segments of this instance
+           are never reopened */
+        segmentName = String.format("%s%s-%06d%s", SEGMENT_PREFIX, instanceId, number, SEGMENT_SUFFIX);
+        segment = new FileOutputStream(new File(dir, segmentName), true).getChannel();
+        segmentNumber = number;
+    }
+
+    /**********************************************************/
+    /* Reading segments and checkpoints */
+
+    /* Apply whatever other instances have logged since the last refresh, and
+       delete segments that have expired */
+    public synchronized void refresh() throws IOException {
+        readSegments();
+
+        /* fully read and not written to for a week: every event in them is
+           outside the week window and their rentals are in our state */
+        long cutoff = System.currentTimeMillis() - WEEK_MILLIS;
+        List<File> expired = new ArrayList<File>();
+        for (Map.Entry<String, Long> e : readOffsets.entrySet())
+        {
+            File f = new File(dir, e.getKey());
+            if (!e.getKey().equals(segmentName) && e.getValue() == f.length()
+                && f.lastModified() < cutoff)
+            {
+                expired.add(f);
+            }
+        }
+
+        if (!expired.isEmpty())
+        {
+            /* checkpoint first, so their events are on disk before the files go;
+               the next checkpoint drops their offsets */
+            writeCheckpoint();
+            for (File f : expired)
+            {
+                f.delete();
+                readOffsets.remove(f.getName());
+            }
+        }
+    }
+
+    private void readSegments() throws IOException {
+        /* read every segment past its offset; our own are normally up to date
+           already, since append() advances their offsets */
+        HashSet<String> present = new HashSet<String>();
+        String[] names = dir.list();
+        Arrays.sort(names);
+        for (String name : names)
+        {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+            {
+                continue;
+            }
+            present.add(name);
+
+            File f = new File(dir, name);
+            Long offset = readOffsets.get(name);
+            long length = f.length();
+            if (offset == null || offset < length)
+            {
+                readSegment(f, (offset == null ? 0 : offset), length);
+            }
+        }
+
+        /* forget segments that have been deleted */
+        readOffsets.keySet().retainAll(present);
+        expireWeek();
+    }
+
+    private void readSegment(File f, long start, long length) throws IOException {
+        /* only complete lines are applied; a line still being written, or torn by a
+           crash, stays unread until its newline shows up */
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        byte[] bytes = new byte[(int) (length - start)];
+        r.seek(start);
+        r.readFully(bytes);
+        r.close();
+
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n')
+        {
+            end--;
+        }
+        if (end == 0)
+        {
+            return;
+        }
+
+        for (String line : new String(bytes, 0, end - 1, "UTF-8").split("\n"))
+        {
+            applyLine(line);
+        }
+        readOffsets.put(f.getName(), start + end);
+        expireWeek();
+    }
+
+    private void loadCheckpoint() throws IOException {
+        File f = new File(dir, CHECKPOINT_FILENAME);
+        if (!f.exists())
+        {
+            return;
+        }
+
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        String line;
+        while ((line = r.readLine()) != null)
+        {
+            String[] fields = line.split("\t", 5);
+            if (fields[0].equals("generation"))
+            {
+                checkpointGeneration = Long.parseLong(fields[1]);
+            }
+            else if (fields[0].equals("offset"))
+            {
+                readOffsets.put(fields[1], Long.parseLong(fields[2]));
+            }
+            else if (fields[0].equals("rental"))
+            {
+                RentalState state = new RentalState();
+                state.open = fields[2].equals("open");
+                state.pid = Integer.parseInt(fields[3]);
+                state.time = Long.parseLong(fields[4]);
+                rentals.put(fields[1], state);
+                if (state.open)
+                {
+                    addTo(activeRentalsPerPlan, state.pid, 1);
+                }
+            }
+            else if (fields[0].equals("rent"))
+            {
+                addWeekRental(Long.parseLong(fields[1]), Integer.parseInt(fields[2]), fields[3]);
+            }
+        }
+        r.close();
+        expireWeek();
+    }
+
+    private long readCheckpointGeneration() throws IOException {
+        /* generation of the shared checkpoint, 0 if there is none */
+        File f = new File(dir, CHECKPOINT_FILENAME);
+        if (!f.exists())
+        {
+            return 0;
+        }
+
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        String line = r.readLine();
+        r.close();
+
+        String[] fields = (line == null ? new String[0] : line.split("\t"));
+        return (fields.length == 2 && fields[0].equals("generation")) ? Long.parseLong(fields[1]) : 0;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        /* All instances share one checkpoint. If another instance replaced the one
+           our state is based on, it may cover segments deleted since, so adopt it
+           and read on from its offsets before replacing it. */
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILENAME), "rw");
+        FileLock lock = lockFile.getChannel().lock();
+        try
+        {
+            if (readCheckpointGeneration() != checkpointGeneration)
+            {
+                readOffsets.clear();
+                weekRentals.clear();
+                weekRentalCounts.clear();
+                titles.clear();
+                rentals.clear();
+                activeRentalsPerPlan.clear();
+                loadCheckpoint();
+                readSegments();
+            }
+            replaceCheckpoint();
+        }
+        finally
+        {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    private void replaceCheckpoint() throws IOException {
+        /* write to a private file, then rename it over the shared checkpoint */
+        File tmp = new File(dir, CHECKPOINT_FILENAME + "." + instanceId + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        w.write("generation\t" + (checkpointGeneration + 1) + "\n");
+        for (Map.Entry<String, Long> e : readOffsets.entrySet())
+        {
+            w.write("offset\t" + e.getKey() + "\t" + e.getValue() + "\n");
+        }
+        for (Map.Entry<String, RentalState> e : rentals.entrySet())
+        {
+            RentalState state = e.getValue();
+            w.write("rental\t" + e.getKey() + "\t" + (state.open ? "open" : "closed") + "\t"
+                    + state.pid + "\t" + state.time + "\n");
+        }
+        for (WeekRental rental : weekRentals)
+        {
+            w.write("rent\t" + rental.time + "\t" + rental.mid + "\t" + rental.title + "\n");
+        }
+        w.close();
+
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILENAME).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointGeneration++;
+    }
+
+    /**********************************************************/
+    /* Aggregates, updated once per event */
+
+    private void applyLine(String line) {
+        String[] fields = line.split("\t", 6);
+        if (fields.length < 6)
+        {
+            return;
+        }
+        try
+        {
+            apply(Long.parseLong(fields[0]), fields[1], Integer.parseInt(fields[2]),
+                  Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), fields[5]);
+        }
+        catch (NumberFormatException e)
+        {
+            return;
+        }
+    }
+
+    private void apply(long time, String type, int cid, int mid, int pid, String title) {
+        /* segments of different instances are read one after the other, not in
+           time order, so the latest event per customer and movie wins and older
+           ones only count toward the weekly totals */
+        if (type.equals("rent"))
+        {
+            addWeekRental(time, mid, title);
+        }
+
+        String key = cid + ":" + mid;
+        RentalState state = rentals.get(key);
+        if (state == null)
+        {
+            state = new RentalState();
+            state.pid = -1;
+            rentals.put(key, state);
+        }
+        else if (time < state.time)
+        {
+            return;
+        }
+        state.time = time;
+
+        if (state.open)
+        {
+            addTo(activeRentalsPerPlan, state.pid, -1);
+        }
+        state.open = type.equals("rent");
+        if (state.open)
+        {
+            state.pid = pid;
+            addTo(activeRentalsPerPlan, pid, 1);
+        }
+    }
+
+    private void addWeekRental(long time, int mid, String title) {
+        if (time < System.currentTimeMillis() - WEEK_MILLIS)
+        {
+            return;
+        }
+        WeekRental rental = new WeekRental();
+        rental.time = time;
+        rental.mid = mid;
+        rental.title = title;
+        weekRentals.add(rental);
+        addTo(weekRentalCounts, mid, 1);
+        titles.put(mid, title);
+    }
+
+    private static void addTo(HashMap<Integer, Integer> counts, int key, int delta) {
+        Integer count = counts.get(key);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount == 0)
+        {
+            counts.remove(key);
+        }
+        else
+        {
+            counts.put(key, newCount);
+        }
+    }
+
+    private void expireWeek() {
+        long cutoff = System.currentTimeMillis() - WEEK_MILLIS;
+        while (!weekRentals.isEmpty() && weekRentals.peek().time < cutoff)
+        {
+            int mid = weekRentals.poll().mid;
+            addTo(weekRentalCounts, mid, -1);
+            if (!weekRentalCounts.containsKey(mid))
+            {
+                titles.remove(mid);
+            }
+        }
+
+        /* closed rentals only matter to order events that arrive out of order */
+        Iterator<RentalState> it = rentals.values().iterator();
+        while (it.hasNext())
+        {
+            RentalState state = it.next();
+            if (!state.open && state.time < cutoff)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /* Movie ids rented most in the last week, most rented first, at most n of them */
+    public synchronized List<Integer> getTopTitles(int n) {
+        expireWeek();
+        List<Integer> mids = new ArrayList<Integer>(weekRentalCounts.keySet());
+        Collections.sort(mids, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int diff = weekRentalCounts.get(b) - weekRentalCounts.get(a);
+                return diff != 0 ? diff : a.compareTo(b);
+            }
+        });
+        return mids.subList(0, Math.max(0, Math.min(n, mids.size())));
+    }
+
+    public synchronized int getWeekRentals(int mid) {
+        Integer count = weekRentalCounts.get(mid);
+        return count == null ? 0 : count;
+    }
+
+    public synchronized String getTitle(int mid) {
+        return titles.get(mid);
+    }
+
+    /* Open rentals per plan id, by the plan the customer had when renting */
+    public synchronized HashMap<Integer, Integer> getActiveRentalsPerPlan() {
+        return new HashMap<Integer, Integer>(activeRentalsPerPlan);
+    }
+}
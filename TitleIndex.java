@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Sorted in-memory index of movie titles for case-insensitive prefix lookups.
+ * Each title keeps its lower-cased name next to the original, which roughly
+ * doubles the string memory of the index in exchange for plain compareTo
+ * lookups.
+ */
+public class TitleIndex {
+    public static class Title implements Comparable<Title> {
+        public final int id;
+        public final String name;
+        public final String year;
+        private final String key;  // lower-cased name, the sort key
+
+        Title(int id, String name, String year) {
+            this.id = id;
+            this.name = name;
+            this.year = year;
+            this.key = name.toLowerCase(Locale.ROOT);
+        }
+
+        public int compareTo(Title other) {
+            int diff = key.compareTo(other.key);
+            return diff != 0 ? diff : (id < other.id ? -1 : (id == other.id ? 0 : 1));
+        }
+    }
+
+    private ArrayList<Title> titles = new ArrayList<Title>();
+
+    /* Add a movie; call build() once all movies are added */
+    public void add(int id, String name, String year) {
+        if (name == null)
+        {
+            return;
+        }
+        titles.add(new Title(id, name, year));
+    }
+
+    public void build() {
+        titles.trimToSize();
+        Collections.sort(titles);
+    }
+
+    /* At most n titles starting with prefix (ignoring case), in title order */
+    public List<Title> suggest(String prefix, int n) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+
+        /* binary search for the first title >= prefix */
+        int lo = 0;
+        int hi = titles.size();
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (titles.get(mid).key.compareTo(key) < 0)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+
+        List<Title> result = new ArrayList<Title>();
+        for (int i = lo; i < titles.size() && result.size() < n && titles.get(i).key.startsWith(key); i++)
+        {
+            result.add(titles.get(i));
+        }
+        return result;
+    }
+}
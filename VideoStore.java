@@ -4,16 +4,20 @@ import java.util.StringTokenizer;
 
 public class VideoStore {
     private static final String DBCONFIG_FILENAME = "dbconn.properties";
+    private static final int SUGGEST_LIMIT = 10;
+    private static final int TOP_LIMIT = 10;
 
     public static void usage() {
         /* prints the choices for commands and parameters */
         System.out.println();
         System.out.println(" *** Please enter one of the following commands *** ");
         System.out.println("> search <movie title>");
+        System.out.println("> suggest <movie title prefix>");
         System.out.println("> plan [<plan id>]");
         System.out.println("> rent <movie id>");
         System.out.println("> return <movie id>");
         System.out.println("> fastsearch <movie title>");
+        System.out.println("> top [<number of titles>]");
         System.out.println("> quit");
     }
 
@@ -52,6 +56,15 @@ public class VideoStore {
                     System.out.println("Error: need to type in movie title");
                 }
             }
+            else if (t.equals("suggest")) {
+                /* list movies whose title starts with a prefix, to find the movie id */
+                if (st.hasMoreTokens()) {
+                    String prefix = st.nextToken("\n").trim(); /* read the rest of the line */
+                    q.transaction_suggest(prefix, SUGGEST_LIMIT);
+                } else {
+                    System.out.println("Error: need to type in a movie title prefix");
+                }
+            }
             else if (t.equals("plan")) {
                 /* choose a new rental plan, or, if none is given, then list all available plans */
                 if (st.hasMoreTokens()) {
@@ -59,6 +72,8 @@ public class VideoStore {
                     /* need to check that plan_id is a valid plan id in the database, */
                     /* if yes, then set the new plan for the current customer */
                     /* if not, then list all available plans */
+                    /* isValidPlan reads the plan catalog as of the change feed poll made by
+                       transaction_printPersonalData at the top of this loop */
                     boolean correct_plan = q.isValidPlan(plan_id);
                     if (correct_plan) {
                         System.out.println("Switching to plan " + plan_id);
@@ -97,7 +112,20 @@ public class VideoStore {
                     System.out.println("Error: need to type in movie title");
                 }
             }
+            else if (t.equals("top")) {
+                /* most rented titles this week, from the local rental log */
+                int n = TOP_LIMIT;
+                if (st.hasMoreTokens()) {
+                    n = Integer.parseInt(st.nextToken());
+                }
+                if (n < 0) {
+                    System.out.println("Error: number of titles must not be negative");
+                } else {
+                    q.transaction_top(n);
+                }
+            }
             else if (t.equals("quit")) {
+                q.closeConnection(); /* also checkpoints the rental log */
                 System.exit(0);
             }
             else {
@@ -6,8 +6,50 @@ CREATE TABLE HAS_PLAN (cid INTEGER, pid INTEGER, PRIMARY KEY (cid), FOREIGN KEY
 CREATE TABLE CUSTOMER_RENTALS (cid INTEGER, mid INTEGER, status VARCHAR(30), checkout_date DATETIME);
 CREATE CLUSTERED INDEX CUSTOMER_RENTALS_Index ON CUSTOMER_RENTALS (cid);
 
+-- Change feed: every insert/update/delete on CUSTOMER_RENTALS, HAS_PLAN and
+-- RENTAL_PLANS appends a row here. Each VideoStore instance polls it for
+-- versions newer than the last one it saw and drops the affected cache entries.
+--
+-- Retention: rows older than a day are deleted, except the newest row, so the
+-- table never empties. VideoStore runs this at startup:
+--   DELETE FROM CHANGE_FEED WHERE changed_at < DATEADD(day, -1, SYSDATETIME())
+--   AND version < (SELECT MAX(version) FROM CHANGE_FEED);
+-- An instance whose last applied version is no longer in the table (it fell
+-- below the retained minimum) may have missed trimmed changes and must clear
+-- all of its caches before using them again.
+-- version is a ROWVERSION so readers can stop below MIN_ACTIVE_ROWVERSION(),
+-- i.e. only read rows whose writing transaction has committed.
+CREATE TABLE CHANGE_FEED (id BIGINT IDENTITY, version ROWVERSION, table_name VARCHAR(30), cid INTEGER, mid INTEGER, pid INTEGER, changed_at DATETIME DEFAULT SYSDATETIME(), PRIMARY KEY (id));
+CREATE UNIQUE INDEX CHANGE_FEED_Version ON CHANGE_FEED (version);
+GO
+
+CREATE TRIGGER CUSTOMER_RENTALS_Changes ON CUSTOMER_RENTALS AFTER INSERT, UPDATE, DELETE AS
+SET NOCOUNT ON;
+INSERT INTO CHANGE_FEED (table_name, cid, mid, pid)
+SELECT 'customer_rentals', cid, mid, NULL FROM inserted
+UNION
+SELECT 'customer_rentals', cid, mid, NULL FROM deleted;
+GO
+
+CREATE TRIGGER HAS_PLAN_Changes ON HAS_PLAN AFTER INSERT, UPDATE, DELETE AS
+SET NOCOUNT ON;
+INSERT INTO CHANGE_FEED (table_name, cid, mid, pid)
+SELECT 'has_plan', cid, NULL, pid FROM inserted
+UNION
+SELECT 'has_plan', cid, NULL, pid FROM deleted;
+GO
+
+CREATE TRIGGER RENTAL_PLANS_Changes ON RENTAL_PLANS AFTER INSERT, UPDATE, DELETE AS
+SET NOCOUNT ON;
+INSERT INTO CHANGE_FEED (table_name, cid, mid, pid)
+SELECT 'rental_plans', NULL, NULL, pid FROM inserted
+UNION
+SELECT 'rental_plans', NULL, NULL, pid FROM deleted;
+GO
+
 -- Drop Tables:
 
+-- DROP TABLE CHANGE_FEED;
 -- DROP TABLE HAS_PLAN;
 -- DROP TABLE CUSTOMER_RENTALS;
 -- DROP TABLE RENTAL_PLANS;